@@ -332,3 +332,501 @@ public class DeadLockTest2 {
         threadB.start();
     }
 }
+
+
+/**
+ * 消除回退栈(Elimination Backoff Stack)
+ * 上面的生产者消费者例子中，所有生产线程和消费线程都要竞争同一个queue的监视器锁，高并发时全部被串行化
+ * 其实一个push和一个pop同时到达时，两者可以直接交换元素，根本不需要访问中心的数据结构(push后马上pop，栈的状态不变)
+ * 1) 先用CAS尝试修改栈顶(Treiber无锁栈)，成功则直接返回
+ * 2) CAS失败说明有竞争，此时到消除数组(Exchanger数组)中随机选一个槽位，等待与相反操作的线程交换元素
+ * 3) 交换成功则push/pop直接完成；超时或者碰到同类操作则回到第1步重试
+ * 消除数组的有效范围根据竞争程度自适应：交换成功(竞争激烈)则扩大范围，超时(竞争不激烈)则缩小范围
+ */
+
+//无锁交换器：一个槽位，通过CAS在 EMPTY -> WAITING -> BUSY 三种状态间切换
+//状态和元素打包在AtomicStampedReference中，stamp表示状态
+public class LockFreeExchanger<T> {
+    static final int EMPTY = 0, WAITING = 1, BUSY = 2;
+    private final AtomicStampedReference<T> slot = new AtomicStampedReference<T>(null, EMPTY);
+
+    public T exchange(T myItem, long timeout, TimeUnit unit) throws TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        long timeBound = System.nanoTime() + nanos;
+        int[] stampHolder = {EMPTY};
+        while (true) {
+            if (System.nanoTime() > timeBound) {
+                throw new TimeoutException();
+            }
+            T yrItem = slot.get(stampHolder);
+            int stamp = stampHolder[0];
+            switch (stamp) {
+                case EMPTY:
+                    //槽位空闲，放入自己的元素并等待配对线程
+                    if (slot.compareAndSet(yrItem, myItem, EMPTY, WAITING)) {
+                        while (System.nanoTime() < timeBound) {
+                            yrItem = slot.get(stampHolder);
+                            if (stampHolder[0] == BUSY) {
+                                //配对线程已经取走元素并留下它的元素，重置槽位
+                                slot.set(null, EMPTY);
+                                return yrItem;
+                            }
+                        }
+                        //超时，尝试撤回自己的元素
+                        if (slot.compareAndSet(myItem, null, WAITING, EMPTY)) {
+                            throw new TimeoutException();
+                        }
+                        //撤回失败说明在最后一刻配对成功了
+                        yrItem = slot.get(stampHolder);
+                        slot.set(null, EMPTY);
+                        return yrItem;
+                    }
+                    break;
+                case WAITING:
+                    //已有线程在等待，取走它的元素并放入自己的元素
+                    if (slot.compareAndSet(yrItem, myItem, WAITING, BUSY)) {
+                        return yrItem;
+                    }
+                    break;
+                case BUSY:
+                    //其他两个线程正在交换，重试
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+}
+
+//消除数组：多个交换器组成的数组，range表示当前使用的槽位个数，根据竞争情况自适应调整
+public class EliminationArray<T> {
+    private static final long DURATION = 100; //单次交换等待时间(微秒)
+    private final LockFreeExchanger<T>[] exchanger;
+    //当前使用的槽位范围[0,range)，竞争激烈时扩大，竞争不激烈时缩小
+    private volatile int range = 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EliminationArray(int capacity) {
+        exchanger = (LockFreeExchanger<T>[]) new LockFreeExchanger[capacity];
+        for (int i = 0; i < capacity; i++) {
+            exchanger[i] = new LockFreeExchanger<T>();
+        }
+    }
+
+    //push传入元素，pop传入null；返回配对线程的值，一方为null另一方非null时才是真正的消除
+    public T visit(T value) throws TimeoutException {
+        int r = range;
+        int slot = ThreadLocalRandom.current().nextInt(r);
+        try {
+            T other = exchanger[slot].exchange(value, DURATION, TimeUnit.MICROSECONDS);
+            //push和pop配对成功说明竞争激烈，扩大范围分散冲突；两个push或者两个pop相遇不算消除，范围不变
+            boolean eliminated = (value == null) != (other == null);
+            if (eliminated && r < exchanger.length && range == r) {
+                range = r + 1;
+            }
+            return other;
+        } catch (TimeoutException ex) {
+            //超时说明配对的线程少，缩小范围提高相遇概率
+            if (r > 1 && range == r) {
+                range = r - 1;
+            }
+            throw ex;
+        }
+    }
+}
+
+//消除回退栈：Treiber无锁栈 + 消除数组
+//push线程交换时传入自己的元素，pop线程交换时传入null，只有push和pop配对时交换才算成功
+public class EliminationBackoffStack<T> {
+    static final class Node<T> {
+        final T value;
+        Node<T> next;
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> top = new AtomicReference<Node<T>>(null);
+    private final EliminationArray<T> eliminationArray =
+            new EliminationArray<T>(Runtime.getRuntime().availableProcessors());
+
+    private boolean tryPush(Node<T> node) {
+        Node<T> oldTop = top.get();
+        node.next = oldTop;
+        return top.compareAndSet(oldTop, node);
+    }
+
+    public void push(T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node<T> node = new Node<T>(value);
+        while (true) {
+            if (tryPush(node)) {
+                return;
+            }
+            try {
+                //CAS失败，到消除数组中等待pop线程，换回null说明配对成功
+                T other = eliminationArray.visit(value);
+                if (other == null) {
+                    return;
+                }
+            } catch (TimeoutException ex) {
+                //超时则回退到栈顶重试
+            }
+        }
+    }
+
+    //栈为空时返回null
+    public T pop() {
+        while (true) {
+            Node<T> oldTop = top.get();
+            if (oldTop == null) {
+                return null;
+            }
+            if (top.compareAndSet(oldTop, oldTop.next)) {
+                return oldTop.value;
+            }
+            try {
+                //CAS失败，到消除数组中等待push线程，换回非null说明配对成功
+                T other = eliminationArray.visit(null);
+                if (other != null) {
+                    return other;
+                }
+            } catch (TimeoutException ex) {
+                //超时则回退到栈顶重试
+            }
+        }
+    }
+}
+
+//用消除回退栈做生产者消费者之间的交接：消费线程取不到元素时让出CPU再重试
+//注意：这里把例子中先进先出的队列换成了后进先出的栈，元素的处理顺序不再是生产顺序，
+//持续高负载时压在栈底的元素可能一直得不到处理(饥饿)。对顺序或者单个元素的延迟有要求时不能这样替换，
+//消除的思路同样可以用在队列上，但只有队列为空时入队和出队才能直接配对，能消除的机会比栈少得多
+//生产线程
+stack.push(ele);
+//消费线程
+Object ele;
+while ((ele = stack.pop()) == null) {
+    Thread.yield();
+}
+
+//吞吐量对比：线程数8~64，一半生产一半消费，分别测试基于监视器锁的有界队列和消除回退栈
+//每个线程数先预热一轮，之后交替两种实现的先后顺序测量多轮取平均；所有线程就绪后才开始计时，不包含线程创建和启动的时间
+public class EliminationBenchmark {
+    static final int OPS_PER_THREAD = 200_000;
+    static final int MAX_SIZE = 1024;
+    static final int ROUNDS = 4;
+
+    //基于监视器锁的有界队列，和上面生产者消费者例子的写法一样：满了或者空了就wait()，操作后notifyAll()
+    static final class MonitorQueue<T> {
+        private final Deque<T> queue = new ArrayDeque<T>();
+        public void put(T e) throws InterruptedException {
+            synchronized (queue) {
+                while (queue.size() == MAX_SIZE) {
+                    queue.wait();
+                }
+                queue.addLast(e);
+                queue.notifyAll();
+            }
+        }
+        public T take() throws InterruptedException {
+            synchronized (queue) {
+                while (queue.size() == 0) {
+                    queue.wait();
+                }
+                T e = queue.pollFirst();
+                queue.notifyAll();
+                return e;
+            }
+        }
+    }
+
+    interface Task {
+        void run() throws InterruptedException;
+    }
+
+    //返回从所有线程同时开始到全部结束的耗时(纳秒)
+    static long run(int threads, Task producer, Task consumer) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch startGate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Task task = i % 2 == 0 ? producer : consumer;
+            new Thread(() -> {
+                ready.countDown();
+                try {
+                    startGate.await();
+                    task.run();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        startGate.countDown();
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    static long runQueue(int threads) throws InterruptedException {
+        final MonitorQueue<Integer> queue = new MonitorQueue<Integer>();
+        return run(threads, () -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                queue.put(i);
+            }
+        }, () -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                queue.take();
+            }
+        });
+    }
+
+    static long runStack(int threads) throws InterruptedException {
+        final EliminationBackoffStack<Integer> stack = new EliminationBackoffStack<Integer>();
+        return run(threads, () -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                stack.push(i);
+            }
+        }, () -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                while (stack.pop() == null) {
+                    Thread.yield();
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        for (int threads = 8; threads <= 64; threads *= 2) {
+            //预热，结果丢弃
+            runQueue(threads);
+            runStack(threads);
+            long queueNanos = 0, stackNanos = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                //交替先后顺序，避免总是同一种实现先跑
+                if (round % 2 == 0) {
+                    queueNanos += runQueue(threads);
+                    stackNanos += runStack(threads);
+                } else {
+                    stackNanos += runStack(threads);
+                    queueNanos += runQueue(threads);
+                }
+            }
+            long totalOps = (long) threads * OPS_PER_THREAD * ROUNDS;
+            System.out.println(threads + " threads: monitor queue " + totalOps * 1000 / queueNanos
+                    + " ops/us, elimination stack " + totalOps * 1000 / stackNanos + " ops/us");
+        }
+    }
+}
+//预期：在核数足够(线程能真正并行)的机器上，竞争越激烈，消除数组配对成功的概率越高，大部分push/pop不再访问栈顶，
+//吞吐量应随线程数增加而上升或者保持平稳；而监视器锁队列的所有操作都串行化在同一把锁上，线程越多吞吐量越低。
+//核数少于线程数时，交换的双方很难同时在运行，消除很少成功，看不到这种扩展性，需要以实际机器上的测量结果为准
+
+
+/**
+ * 带限流和背压的生产者
+ * 上面的生产者消费者例子中，队列满(queue.size() == MAX_SIZE)时生产线程只能wait()，
+ * 过载时会堆积大量被阻塞的生产线程，延迟不可控。这里在生产者一侧加一层流控：
+ * 1) 令牌桶限流：按固定速率发放令牌，允许一定的突发，令牌的补充通过CAS完成，不加锁
+ * 2) 溢出策略：队列满或者消费者没有需求时，可以选择阻塞(BLOCK)、丢弃最老元素(DROP_OLDEST)、
+ *    丢弃最新元素(DROP_NEWEST)或者由调用者线程自己处理(CALLER_RUNS)
+ * 3) 需求信号：类似reactive-streams，消费者通过request(n)告诉生产者自己还能处理n个元素，生产者不会超发
+ * 4) 指标：队列深度、被限流、被丢弃、调用者处理的次数
+ */
+
+//令牌桶：不单独保存令牌数，而是保存"理论到达时间"(TAT)，每取一个令牌TAT向后推进一个发放间隔
+//TAT - 桶容量*间隔 <= 当前时间，说明桶里还有令牌。只需要对一个AtomicLong做CAS，补充令牌不需要定时任务
+public class TokenBucket {
+    private final long intervalNanos; //发放一个令牌的间隔
+    private final long burstNanos;    //桶容量对应的时间
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(long permitsPerSecond, long burst) {
+        //间隔以纳秒为单位，超过每秒10亿个令牌时间隔为0，等于不限流
+        if (permitsPerSecond <= 0 || permitsPerSecond > TimeUnit.SECONDS.toNanos(1)) {
+            throw new IllegalArgumentException("permitsPerSecond must be in (0, 1e9]");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    //获取令牌成功返回0，否则返回还需要等待的纳秒数
+    public long tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            //TAT落后于当前时间说明桶是满的，从当前时间开始计算，空闲时间不会累积超过桶容量的令牌
+            long base = Math.max(current, now);
+            long next = base + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
+
+//溢出策略
+public enum OverflowPolicy {
+    BLOCK,       //阻塞等待，最多等待maxBlockNanos，超时则拒绝
+    DROP_OLDEST, //丢弃队头最老的元素，放入新元素
+    DROP_NEWEST, //丢弃当前要放入的新元素
+    CALLER_RUNS  //由生产线程自己处理该元素
+}
+
+public class BackpressuredProducer<T> {
+    private final ArrayDeque<T> queue = new ArrayDeque<T>();
+    private final int maxSize;
+    private final TokenBucket bucket;
+    private final OverflowPolicy policy;
+    private final long maxBlockNanos;
+    //CALLER_RUNS策略下生产线程用来处理元素的回调
+    private final Consumer<T> callerRunsHandler;
+    //消费者通过request(n)发出的剩余需求，受queue监视器锁保护
+    private long demand;
+
+    //指标
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public BackpressuredProducer(int maxSize, TokenBucket bucket, OverflowPolicy policy,
+                                 long maxBlock, TimeUnit unit, Consumer<T> callerRunsHandler) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (policy == OverflowPolicy.CALLER_RUNS && callerRunsHandler == null) {
+            throw new IllegalArgumentException("CALLER_RUNS requires a callerRunsHandler");
+        }
+        this.maxSize = maxSize;
+        this.bucket = bucket;
+        this.policy = policy;
+        this.maxBlockNanos = unit.toNanos(maxBlock);
+        this.callerRunsHandler = callerRunsHandler;
+    }
+
+    //生产线程调用，返回元素是否被放入队列或者被调用者处理
+    public boolean offer(T ele) throws InterruptedException {
+        long deadline = System.nanoTime() + maxBlockNanos;
+        //1.限流
+        long waitNanos;
+        while ((waitNanos = bucket.tryAcquire()) > 0) {
+            if (policy != OverflowPolicy.BLOCK) {
+                return reject(ele, rateLimited);
+            }
+            if (System.nanoTime() + waitNanos - deadline > 0) {
+                timedOut.increment();
+                return false;
+            }
+            LockSupport.parkNanos(waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        //2.入队，队列满或者没有需求时按溢出策略处理
+        synchronized (queue) {
+            while (queue.size() == maxSize || demand == 0) {
+                if (policy == OverflowPolicy.BLOCK) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timedOut.increment();
+                        return false;
+                    }
+                    //和上面的例子一样挂起并释放queue上的锁，只是加了超时
+                    TimeUnit.NANOSECONDS.timedWait(queue, remaining);
+                } else if (policy == OverflowPolicy.DROP_OLDEST && queue.size() == maxSize) {
+                    //队列满时用新元素替换队头：被丢弃的元素不会再被消费，归还它入队时占用的那一份需求
+                    queue.pollFirst();
+                    if (demand < Long.MAX_VALUE) {
+                        demand++;
+                    }
+                    dropped.increment();
+                } else {
+                    //DROP_NEWEST、CALLER_RUNS，或者DROP_OLDEST时队列没满但需求已经用完(丢弃老元素也不能发送)
+                    break;
+                }
+            }
+            if (queue.size() < maxSize && demand > 0) {
+                demand--;
+                queue.addLast(ele);
+                accepted.increment();
+                queue.notifyAll();
+                return true;
+            }
+        }
+        //CALLER_RUNS在锁外执行，避免阻塞消费者
+        return reject(ele, dropped);
+    }
+
+    private boolean reject(T ele, LongAdder counter) {
+        if (policy == OverflowPolicy.CALLER_RUNS) {
+            callerRuns.increment();
+            callerRunsHandler.accept(ele);
+            return true;
+        }
+        counter.increment();
+        return false;
+    }
+
+    //消费线程调用：表示还能再处理n个元素，唤醒等待需求的生产线程
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        synchronized (queue) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; //溢出时视为无限需求
+            queue.notifyAll();
+        }
+    }
+
+    //消费线程调用，队列为空时挂起
+    public T take() throws InterruptedException {
+        synchronized (queue) {
+            while (queue.isEmpty()) {
+                queue.wait();
+            }
+            T ele = queue.pollFirst();
+            queue.notifyAll();
+            return ele;
+        }
+    }
+
+    public int depth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public long accepted() { return accepted.sum(); }
+    public long rateLimited() { return rateLimited.sum(); }
+    public long dropped() { return dropped.sum(); }
+    public long callerRuns() { return callerRuns.sum(); }
+    public long timedOut() { return timedOut.sum(); }
+}
+
+//使用：每秒最多10000个元素，允许100个突发，队列满时最多阻塞5ms，消费者每处理完一批再请求一批
+BackpressuredProducer<Object> producer = new BackpressuredProducer<>(MAX_SIZE,
+        new TokenBucket(10_000, 100), OverflowPolicy.BLOCK, 5, TimeUnit.MILLISECONDS, null);
+//生产线程
+if (!producer.offer(ele)) {
+    //被限流、丢弃或者超时，由业务决定重试还是降级
+}
+//消费线程
+producer.request(MAX_SIZE);
+for (int i = 0; i < MAX_SIZE; i++) {
+    process(producer.take());
+}
+//过载时生产线程最多被阻塞maxBlock，不会无限堆积，p99延迟有上界；被拒绝的数量可以从指标中观察
@@ -174,3 +174,336 @@ public class RandomTest{
 
 //ThreadLocalRandom类似于ThreadLocal类，就是个工具类，当线程调用ThreadLocalRandom的current方法时
 //ThreadLocalRandom负责初始化调用线程的threadLocalRandomSeed变量，也就是初始化种子(具体的种子存放在具体的调用线程的threadLoaclRandomSeed变量之中)
+
+
+/**
+ * 基于ThreadLocal的对象池(Recycler)
+ * 生产者消费者例子中每个元素都会新建一个消息对象，用完即丢弃，这些短命对象是GC压力的主要来源
+ * 利用ThreadLocal让每个线程持有自己的对象栈，借出和归还都在本线程内完成，不需要加锁
+ * 1) 线程本地栈：本线程借出、本线程归还的对象直接放在本地栈里，无竞争
+ * 2) 跨线程归还：生产线程借出的对象通常由消费线程归还，此时放入所属线程(owner)的MPSC队列(多生产者单消费者)，
+ *    owner线程本地栈为空时再从该队列中批量转移回来；队列中的对象个数同样受容量限制
+ * 3) 容量限制：本地栈满后多出来的对象放入弱引用的溢出区，内存紧张时可以被GC回收，不会无限占用内存
+ * 对象只通过弱引用持有所属线程，线程结束后它的Thread对象和归还给它的对象都可以被GC回收
+ */
+public abstract class Recycler<T> {
+    private static final int DEFAULT_MAX_CAPACITY = 4096;
+    private static final int DEFAULT_MAX_OVERFLOW = 1024;
+
+    private final int maxCapacity;
+    private final int maxOverflow;
+
+    //每个线程第一次调用get()时初始化自己的对象栈
+    private final ThreadLocal<Stack<T>> threadLocal = new ThreadLocal<Stack<T>>() {
+        @Override
+        protected Stack<T> initialValue() {
+            return new Stack<T>(Thread.currentThread(), maxCapacity, maxOverflow);
+        }
+    };
+
+    protected Recycler() {
+        this(DEFAULT_MAX_CAPACITY, DEFAULT_MAX_OVERFLOW);
+    }
+
+    protected Recycler(int maxCapacity, int maxOverflow) {
+        //在这里检查参数，否则要等到某个线程第一次get()创建对象栈时才会失败
+        if (maxCapacity <= 0) {
+            throw new IllegalArgumentException("maxCapacity must be positive");
+        }
+        if (maxOverflow < 0) {
+            throw new IllegalArgumentException("maxOverflow must not be negative");
+        }
+        this.maxCapacity = maxCapacity;
+        this.maxOverflow = maxOverflow;
+    }
+
+    //子类负责创建新对象，对象需要持有handle以便用完后归还
+    protected abstract T newObject(Handle<T> handle);
+
+    public final T get() {
+        Stack<T> stack = threadLocal.get();
+        Handle<T> handle = stack.pop();
+        if (handle == null) {
+            //池中没有可用对象，新建一个并绑定到当前线程的栈
+            handle = new Handle<T>(stack);
+            handle.value = newObject(handle);
+        }
+        return handle.value;
+    }
+
+    //归还句柄：对象和它所属的栈绑定，谁借出的就归还给谁
+    public static final class Handle<T> {
+        private final Stack<T> stack;
+        //防止同一个对象被重复归还：0表示已借出，1表示在池中
+        private final AtomicInteger recycled = new AtomicInteger(0);
+        //作为MPSC队列节点时指向下一个节点
+        volatile Handle<T> next;
+        T value;
+
+        Handle(Stack<T> stack) {
+            this.stack = stack;
+        }
+
+        public void recycle() {
+            if (!recycled.compareAndSet(0, 1)) {
+                throw new IllegalStateException("recycled already");
+            }
+            Thread owner = stack.owner.get();
+            if (Thread.currentThread() == owner) {
+                //本线程归还，直接放回本地栈
+                stack.push(this);
+            } else if (owner != null && owner.isAlive()) {
+                //其他线程归还，放入owner线程的MPSC队列
+                stack.pushLater(this);
+            }
+            //owner线程已经结束，没有线程会再从它的栈中取对象，直接丢弃交给GC回收
+        }
+    }
+
+    static final class Stack<T> {
+        //弱引用持有owner线程，线程结束后可以被回收
+        final WeakReference<Thread> owner;
+        private final Handle<T>[] elements;
+        private int size;
+        //跨线程归还的对象，多个线程并发写入，只有owner线程读取
+        private final MpscQueue<T> pending = new MpscQueue<T>();
+        //pending中的对象个数，最多maxCapacity个
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        //本地栈满后的溢出区，使用弱引用，GC时可以被回收
+        private final ArrayDeque<WeakReference<Handle<T>>> overflow = new ArrayDeque<WeakReference<Handle<T>>>();
+        private final int maxOverflow;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stack(Thread owner, int maxCapacity, int maxOverflow) {
+            this.owner = new WeakReference<Thread>(owner);
+            this.elements = new Handle[maxCapacity];
+            this.maxOverflow = maxOverflow;
+        }
+
+        //只会被owner线程调用
+        Handle<T> pop() {
+            if (size == 0 && !scavenge()) {
+                return null;
+            }
+            Handle<T> handle = elements[--size];
+            elements[size] = null;
+            handle.recycled.set(0);
+            return handle;
+        }
+
+        //只会被owner线程调用
+        void push(Handle<T> handle) {
+            if (size < elements.length) {
+                elements[size++] = handle;
+            } else if (overflow.size() < maxOverflow) {
+                overflow.addLast(new WeakReference<Handle<T>>(handle));
+            }
+            //溢出区也满了则直接丢弃，交给GC回收
+        }
+
+        //被其他线程调用，pending已满则直接丢弃，交给GC回收
+        void pushLater(Handle<T> handle) {
+            if (pendingCount.incrementAndGet() > elements.length) {
+                pendingCount.decrementAndGet();
+                return;
+            }
+            pending.offer(handle);
+        }
+
+        //本地栈为空时，先从跨线程归还队列转移(超出容量的部分经过push进入溢出区)，再从溢出区中找回未被GC回收的对象
+        private boolean scavenge() {
+            Handle<T> handle;
+            while ((handle = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                push(handle);
+            }
+            WeakReference<Handle<T>> ref;
+            while (size < elements.length && (ref = overflow.pollFirst()) != null) {
+                handle = ref.get();
+                if (handle != null) {
+                    elements[size++] = handle;
+                }
+            }
+            return size > 0;
+        }
+    }
+
+    //多生产者单消费者队列：offer可以被多个线程并发调用，poll只能被owner线程调用
+    //侵入式实现，Handle本身就是队列节点，入队不需要额外分配节点对象；生产者通过getAndSet抢占尾节点，不需要CAS重试
+    static final class MpscQueue<T> {
+        private final Handle<T> stub = new Handle<T>(null);
+        //只被消费者(owner线程)访问
+        private Handle<T> head = stub;
+        private final AtomicReference<Handle<T>> tail = new AtomicReference<Handle<T>>(stub);
+
+        void offer(Handle<T> node) {
+            node.next = null;
+            Handle<T> prev = tail.getAndSet(node);
+            //getAndSet和设置next之间消费者可能看到next为null，此时认为队列为空，下次再取
+            prev.next = node;
+        }
+
+        Handle<T> poll() {
+            Handle<T> h = head;
+            Handle<T> next = h.next;
+            if (h == stub) {
+                //跳过哨兵节点
+                if (next == null) {
+                    return null;
+                }
+                head = next;
+                h = next;
+                next = next.next;
+            }
+            if (next != null) {
+                head = next;
+                return h;
+            }
+            if (h != tail.get()) {
+                //有生产者正在入队，还没有链接上
+                return null;
+            }
+            //h是最后一个节点，重新放入哨兵节点后才能把h取出
+            offer(stub);
+            next = h.next;
+            if (next != null) {
+                head = next;
+                return h;
+            }
+            return null;
+        }
+    }
+}
+
+//使用对象池的消息对象
+public final class Message {
+    private static final Recycler<Message> RECYCLER = new Recycler<Message>() {
+        @Override
+        protected Message newObject(Handle<Message> handle) {
+            return new Message(handle);
+        }
+    };
+
+    private final Recycler.Handle<Message> handle;
+    private Object payload;
+
+    private Message(Recycler.Handle<Message> handle) {
+        this.handle = handle;
+    }
+
+    public static Message newInstance(Object payload) {
+        Message msg = RECYCLER.get();
+        msg.payload = payload;
+        return msg;
+    }
+
+    public Object payload() {
+        return payload;
+    }
+
+    //用完后清空状态并归还
+    public void recycle() {
+        payload = null;
+        handle.recycle();
+    }
+}
+
+//生产线程借出，消费线程用完后归还(跨线程归还，进入生产线程的MPSC队列)
+//生产线程
+queue.add(Message.newInstance(ele));
+//消费线程
+Message msg = queue.take();
+process(msg.payload());
+msg.recycle();
+
+//使用JMH验证稳态下零分配：java -jar benchmarks.jar RecyclerBenchmark -prof gc
+//关注gc.alloc.rate.norm指标，recycled组稳态下应接近0 B/op，allocate组每次操作都会分配一个消息对象
+//生产和消费方法都不能阻塞：阻塞队列在迭代结束时可能让一方永远挂起，而且JDK 17+中每次await都会分配AQS的ConditionNode，
+//所以这里用一个不加锁的单生产者单消费者环形队列，放不进去或者取不到时直接返回
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecyclerBenchmark {
+    //不使用对象池的消息对象，作为对照
+    static final class PlainMessage {
+        final Object payload;
+        PlainMessage(Object payload) {
+            this.payload = payload;
+        }
+    }
+
+    //单生产者单消费者环形队列，offer和poll都不分配对象(每个Group默认一个生产线程一个消费线程)
+    static final class SpscRing<E> {
+        private final AtomicReferenceArray<E> buffer;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong(); //只被消费线程修改
+        private final AtomicLong tail = new AtomicLong(); //只被生产线程修改
+
+        SpscRing(int capacity) {
+            buffer = new AtomicReferenceArray<E>(capacity);
+            mask = capacity - 1; //capacity必须是2的幂
+        }
+
+        boolean offer(E e) {
+            long t = tail.get();
+            if (t - head.get() == buffer.length()) {
+                return false;
+            }
+            buffer.lazySet((int) t & mask, e);
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        E poll() {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int index = (int) h & mask;
+            E e = buffer.get(index);
+            buffer.lazySet(index, null);
+            head.lazySet(h + 1);
+            return e;
+        }
+    }
+
+    private final SpscRing<PlainMessage> plainQueue = new SpscRing<PlainMessage>(1024);
+    private final SpscRing<Message> queue = new SpscRing<Message>(1024);
+
+    @Benchmark
+    @Group("allocate")
+    public boolean allocateProducer() {
+        return plainQueue.offer(new PlainMessage(1));
+    }
+
+    @Benchmark
+    @Group("allocate")
+    public Object allocateConsumer() {
+        PlainMessage msg = plainQueue.poll();
+        return msg == null ? null : msg.payload;
+    }
+
+    @Benchmark
+    @Group("recycled")
+    public boolean recycledProducer() {
+        Message msg = Message.newInstance(1);
+        if (!queue.offer(msg)) {
+            //队列满，本线程直接归还
+            msg.recycle();
+            return false;
+        }
+        return true;
+    }
+
+    @Benchmark
+    @Group("recycled")
+    public Object recycledConsumer() {
+        Message msg = queue.poll();
+        if (msg == null) {
+            return null;
+        }
+        Object payload = msg.payload();
+        msg.recycle();
+        return payload;
+    }
+}
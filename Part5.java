@@ -232,4 +232,281 @@ public class CopyList
 //总结：CopyOnWriteArrayList使用写时复制策略来保证List的一致性，而获取——修改——写入三步操作并不是
 //原子性的，所以在增删改的过程中都使用了独占锁，来保证在某个时间只有一个线程能对List数组进行修改。
 //另外CopyOnWriteArrayList提供了弱一致性的迭代器，从而保证在获取迭代器后，其他线程对List的修改是不可见的
-//迭代器遍历的数组是一个快照。
\ No newline at end of file
+//迭代器遍历的数组是一个快照。
+
+//7.快照的持久化：导出到文件，启动时通过内存映射恢复
+//COWIterator持有的snapshot数组是不可变的，遍历它写出的文件就是某一时刻list的一致快照，不需要加锁。
+//启动时不再逐个从数据库重建list，而是用FileChannel.map把文件映射到内存，返回一个只读的List视图，
+//get(i)时才按索引表定位并解码对应元素(懒加载)，数据不需要整体复制到堆中，操作系统按需把页面调入内存。
+
+//文件格式(字节序为大端)：
+//  头部：int magic | int version | long count | long indexOffset
+//  数据区：依次存放每个元素编码后的字节
+//  索引区：count+1个long，第i个元素的数据位于[offset[i],offset[i+1])
+//文件格式无法表示null元素，list中包含null时导出会抛出IllegalArgumentException(CopyOnWriteArrayList本身允许null)
+public final class CowSnapshot
+{
+    private static final int MAGIC = 0x434F5753; //"COWS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    //元素的编解码器
+    public interface Codec<E>
+    {
+        byte[] encode(E element);
+        //从buf的[offset,offset+length)解码出元素，不能修改buf的position和limit
+        E decode(ByteBuffer buf, int offset, int length);
+    }
+
+    public static final Codec<String> UTF8 = new Codec<String>()
+    {
+        public byte[] encode(String element)
+        {
+            return element.getBytes(StandardCharsets.UTF_8);
+        }
+        //一次批量读取元素的字节再解码；duplicate()得到独立的position，不影响其他线程读取
+        public String decode(ByteBuffer buf, int offset, int length)
+        {
+            byte[] bytes = new byte[length];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset);
+            dup.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    //导出：使用迭代器遍历快照，先写数据区，最后写索引区并回填头部
+    //先写到同一目录下的临时文件，刷盘后再原子地替换目标文件，中途失败时原来的快照文件不受影响
+    public static <E> void write(CopyOnWriteArrayList<E> list, Path file, Codec<E> codec) throws IOException
+    {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try
+        {
+            writeTo(list, tmp, codec);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            //移动成功后临时文件已经不存在
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static <E> void writeTo(CopyOnWriteArrayList<E> list, Path file, Codec<E> codec) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            long[] offsets = new long[16];
+            long count = 0;
+            long pos = HEADER_SIZE;
+            ch.position(HEADER_SIZE);
+            //获取迭代器后其他线程的修改对快照不可见
+            Iterator<E> itr = list.iterator();
+            while(itr.hasNext())
+            {
+                E element = itr.next();
+                if(element == null)
+                {
+                    throw new IllegalArgumentException("snapshot cannot contain null (index " + count + ")");
+                }
+                byte[] bytes = codec.encode(element);
+                if(count + 1 == offsets.length)
+                {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[(int) count++] = pos;
+                pos += bytes.length;
+                put(ch, buf, bytes);
+            }
+            offsets[(int) count] = pos;
+            long indexOffset = pos;
+            for(int i = 0; i <= count; i++)
+            {
+                if(buf.remaining() < 8)
+                {
+                    flush(ch, buf);
+                }
+                buf.putLong(offsets[i]);
+            }
+            flush(ch, buf);
+            //回填头部
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putLong(indexOffset).flip();
+            long headerPos = 0;
+            while(header.hasRemaining())
+            {
+                headerPos += ch.write(header, headerPos);
+            }
+            ch.force(true);
+        }
+    }
+
+    private static void put(FileChannel ch, ByteBuffer buf, byte[] bytes) throws IOException
+    {
+        if(bytes.length > buf.remaining())
+        {
+            flush(ch, buf);
+            if(bytes.length > buf.capacity())
+            {
+                //超大元素直接写出
+                ByteBuffer big = ByteBuffer.wrap(bytes);
+                while(big.hasRemaining())
+                {
+                    ch.write(big);
+                }
+                return;
+            }
+        }
+        buf.put(bytes);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining())
+        {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    //导入：一次mmap，返回只读的懒加载视图
+    public static <E> List<E> map(Path file, Codec<E> codec) throws IOException
+    {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = ch.size();
+            if(size > Integer.MAX_VALUE)
+            {
+                //单个MappedByteBuffer最大2GB
+                throw new IOException("snapshot too large to map: " + size);
+            }
+            //映射建立后关闭channel不影响映射的有效性
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(size < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            {
+                throw new IOException("not a snapshot file: " + file);
+            }
+            long count = buf.getLong(8);
+            long indexOffset = buf.getLong(16);
+            //分别限制count和indexOffset的范围，避免头部损坏时相加溢出
+            if(count < 0 || count > (size - HEADER_SIZE) / 8 - 1
+                    || indexOffset < HEADER_SIZE || indexOffset > size - (count + 1) * 8)
+            {
+                throw new IOException("corrupt snapshot file: " + file);
+            }
+            return new MappedList<E>(buf, (int) count, (int) indexOffset, codec);
+        }
+    }
+
+    //只读视图，和COWIterator的snapshot一样不会被修改，可以被多个线程并发读取
+    static final class MappedList<E> extends AbstractList<E> implements RandomAccess
+    {
+        private final ByteBuffer buf;
+        private final int count;
+        private final int indexOffset;
+        private final Codec<E> codec;
+
+        MappedList(ByteBuffer buf, int count, int indexOffset, Codec<E> codec)
+        {
+            this.buf = buf;
+            this.count = count;
+            this.indexOffset = indexOffset;
+            this.codec = codec;
+        }
+
+        //只使用绝对位置的get方法，不修改buf的position，所以并发读取是安全的
+        public E get(int index)
+        {
+            if(index < 0 || index >= count)
+            {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            }
+            long start = buf.getLong(indexOffset + index * 8);
+            long end = buf.getLong(indexOffset + (index + 1) * 8);
+            //索引项必须落在数据区内
+            if(start < HEADER_SIZE || start > end || end > indexOffset)
+            {
+                throw new IllegalStateException("corrupt snapshot index at " + index + ": [" + start + "," + end + ")");
+            }
+            return codec.decode(buf, (int) start, (int) (end - start));
+        }
+
+        public int size()
+        {
+            return count;
+        }
+    }
+}
+
+//使用：启动时直接映射快照，需要修改时再复制成CopyOnWriteArrayList(构造函数中只会调用一次toArray)
+List<String> view = CowSnapshot.map(Paths.get("list.snapshot"), CowSnapshot.UTF8);
+String first = view.get(0);
+CopyOnWriteArrayList<String> arrayList = new CopyOnWriteArrayList<>(view);
+
+//对比：从头重建100万个元素的list 和 通过mmap恢复，分别测量首次读取耗时和全量遍历的吞吐量
+//注意：快照文件刚写完就被映射，页面还在操作系统的页缓存中，测到的是热缓存的结果；
+//真正冷启动(重启机器或者清空页缓存后)第一次访问会触发缺页从磁盘读取，首次读取和全量遍历都会更慢
+public class SnapshotBenchmark
+{
+    static final int SIZE = 1_000_000;
+
+    public static void main(String[] args) throws IOException
+    {
+        Path file = Files.createTempFile("cow", ".snapshot");
+        CopyOnWriteArrayList<String> source = rebuild();
+        CowSnapshot.write(source, file, CowSnapshot.UTF8);
+
+        //1.重建：模拟从数据库加载后构造list
+        long start = System.nanoTime();
+        CopyOnWriteArrayList<String> rebuilt = rebuild();
+        String first = rebuilt.get(0);
+        long rebuildFirstRead = System.nanoTime() - start;
+        long rebuildScan = scan(rebuilt);
+
+        //2.映射：只需要读头部，元素在访问时才解码
+        start = System.nanoTime();
+        List<String> mapped = CowSnapshot.map(file, CowSnapshot.UTF8);
+        first = mapped.get(0);
+        long mapFirstRead = System.nanoTime() - start;
+        long mapScan = scan(mapped);
+
+        System.out.println("rebuild: first read " + rebuildFirstRead / 1000 + "us, scan "
+                + (long) SIZE * 1000 / rebuildScan + " elements/us");
+        System.out.println("mmap:    first read " + mapFirstRead / 1000 + "us, scan "
+                + (long) SIZE * 1000 / mapScan + " elements/us");
+        Files.delete(file);
+    }
+
+    static CopyOnWriteArrayList<String> rebuild()
+    {
+        ArrayList<String> rows = new ArrayList<>(SIZE);
+        for(int i = 0; i < SIZE; i++)
+        {
+            rows.add("row-" + i);
+        }
+        //一次性构造，而不是逐个add(每次add都会复制整个数组)
+        return new CopyOnWriteArrayList<>(rows);
+    }
+
+    //返回遍历耗时(纳秒)
+    static long scan(List<String> list)
+    {
+        long start = System.nanoTime();
+        long total = 0;
+        for(String s : list)
+        {
+            total += s.length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if(total == 0)
+        {
+            System.out.println("empty");
+        }
+        return elapsed;
+    }
+}
+//首次读取的耗时从重建整个list变成一次mmap加一次解码，和元素个数无关(热页缓存下的结果，冷启动还要加上读盘的时间)；
+//全量遍历时mmap视图每次都要从映射区域解码出新的String，吞吐量低于内存中的CopyOnWriteArrayList，适合启动时先提供服务，再在后台复制成可修改的list